@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Emits the downloaded bytes, in order, to a WritableByteChannel (e.g. stdout)
+ * as soon as the contiguous prefix of the file grows.
+ *
+ * Chunks that arrive out of order are kept in memory as long as they fall
+ * inside the reorder window. Chunks beyond the window are only remembered as
+ * written spans, and are read back from the file once the prefix reaches them.
+ */
+class ChunkStreamer {
+	static final int REORDER_WINDOW_SIZE = RangeOrderingPolicy.WINDOW_SIZE;
+	private final int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+	private final WritableByteChannel channel;
+	private final long sizeOfFile;
+	// chunks held in memory, by offset.
+	private final TreeMap<Long, Chunk> m_WindowChunks = new TreeMap<Long, Chunk>();
+	// spans that were written to disk: start offset -> end offset (exclusive).
+	private final TreeMap<Long, Long> m_WrittenSpans = new TreeMap<Long, Long>();
+	private long m_BytesInWindow = 0;
+	private long m_NextOffset = 0;
+
+	ChunkStreamer(WritableByteChannel channel, long sizeOfFile, DownloadableMetadata downloadableMetadata) {
+		this.channel = channel;
+		this.sizeOfFile = sizeOfFile;
+		this.addSpansFromMetadata(downloadableMetadata);
+	}
+
+	long getNextOffset() {
+		return m_NextOffset;
+	}
+
+	/**
+	 * Called by the FileWriter after the chunk was written to the file.
+	 */
+	void offer(Chunk chunk, RandomAccessFile file) throws IOException {
+		long start = chunk.getOffset();
+		long end = start + chunk.getSize_in_bytes();
+
+		// we already streamed these bytes.
+		if (end <= m_NextOffset) {
+			return;
+		}
+
+		addSpan(start, end);
+
+		// keep the data in memory only if it is close enough to the head.
+		if (start < m_NextOffset + REORDER_WINDOW_SIZE
+				&& m_BytesInWindow + chunk.getSize_in_bytes() <= REORDER_WINDOW_SIZE) {
+			Chunk previous = m_WindowChunks.put(start, chunk);
+
+			if (previous != null) {
+				m_BytesInWindow -= previous.getSize_in_bytes();
+			}
+
+			m_BytesInWindow += chunk.getSize_in_bytes();
+		}
+
+		drain(file);
+	}
+
+	/**
+	 * Stream whatever is left on disk (e.g. when everything was downloaded in a
+	 * previous run) and flush the channel.
+	 */
+	void finish(RandomAccessFile file) throws IOException {
+		drain(file);
+	}
+
+	private void drain(RandomAccessFile file) throws IOException {
+		while (m_NextOffset < sizeOfFile) {
+			Map.Entry<Long, Chunk> buffered = m_WindowChunks.floorEntry(m_NextOffset);
+
+			if (buffered != null && buffered.getKey() + buffered.getValue().getSize_in_bytes() > m_NextOffset) {
+				Chunk chunk = buffered.getValue();
+				int from = (int) (m_NextOffset - chunk.getOffset());
+
+				write(ByteBuffer.wrap(chunk.getData(), from, chunk.getSize_in_bytes() - from));
+				m_NextOffset = chunk.getOffset() + chunk.getSize_in_bytes();
+			} else {
+				Map.Entry<Long, Long> span = m_WrittenSpans.floorEntry(m_NextOffset);
+
+				// the next byte was not downloaded yet.
+				if (span == null || span.getValue() <= m_NextOffset) {
+					break;
+				}
+
+				// the chunk did not fit in the window, read it back from the disk.
+				byte[] data = new byte[(int) Math.min(span.getValue() - m_NextOffset, CHUNK_SIZE)];
+				file.seek(m_NextOffset);
+				file.readFully(data);
+				write(ByteBuffer.wrap(data));
+				m_NextOffset += data.length;
+			}
+		}
+
+		evictStreamedChunks();
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void evictStreamedChunks() {
+		Iterator<Chunk> chunks = m_WindowChunks.headMap(m_NextOffset, true).values().iterator();
+
+		while (chunks.hasNext()) {
+			Chunk chunk = chunks.next();
+
+			if (chunk.getOffset() + chunk.getSize_in_bytes() <= m_NextOffset) {
+				m_BytesInWindow -= chunk.getSize_in_bytes();
+				chunks.remove();
+			}
+		}
+
+		Iterator<Long> spanEnds = m_WrittenSpans.headMap(m_NextOffset, true).values().iterator();
+
+		while (spanEnds.hasNext()) {
+			if (spanEnds.next() <= m_NextOffset) {
+				spanEnds.remove();
+			}
+		}
+	}
+
+	private void addSpan(long start, long end) {
+		Long previousEnd = m_WrittenSpans.get(start);
+
+		if (previousEnd == null || previousEnd < end) {
+			m_WrittenSpans.put(start, end);
+		}
+	}
+
+	// when resuming, the chunks that are already on disk are streamed from the file.
+	private void addSpansFromMetadata(DownloadableMetadata downloadableMetadata) {
+		long spanStart = -1;
+		long chunkStart = 0;
+
+		for (int i = 0; chunkStart < sizeOfFile; i++, chunkStart += CHUNK_SIZE) {
+			if (downloadableMetadata.isChunkDownloaded(i)) {
+				if (spanStart < 0) {
+					spanStart = chunkStart;
+				}
+			} else if (spanStart >= 0) {
+				addSpan(spanStart, chunkStart);
+				spanStart = -1;
+			}
+		}
+
+		if (spanStart >= 0) {
+			addSpan(spanStart, sizeOfFile);
+		}
+	}
+}
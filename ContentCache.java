@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A local cache of previously downloaded files.
+ *
+ * Files are keyed by their URL and validator (the ETag or Last-Modified header),
+ * so an unchanged file is copied from the cache instead of downloaded. Every
+ * cached file also keeps the SHA-1 of each of its chunks: when the server
+ * publishes the chunk hashes of a new file (URL.blockhashes, one hex SHA-1 per
+ * CHUNK_SIZE block), every chunk that any cached file already has is copied
+ * locally as well.
+ *
+ * Chunks served from the cache are marked as downloaded in the metadata. The
+ * cache is bounded in size, the least recently used files are evicted first.
+ * A cached file that is missing or damaged is dropped from the cache, and its
+ * chunks are downloaded as usual.
+ */
+class ContentCache {
+	static final String BLOCK_HASHES_SUFFIX = ".blockhashes";
+	static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+	private static final String INDEX_FILENAME = "cache.index";
+	private static final int CONNECT_TIMEOUT = 500;
+	private static final int READ_TIMEOUT = 2000;
+	private final int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+	private final File directory;
+	private final long maxBytes;
+	private LinkedHashMap<String, CacheEntry> m_Entries;
+
+	/**
+	 * A chunk of a cached file.
+	 */
+	private static class CachedChunk {
+		private final CacheEntry entry;
+		private final int chunkId;
+
+		CachedChunk(CacheEntry entry, int chunkId) {
+			this.entry = entry;
+			this.chunkId = chunkId;
+		}
+	}
+
+	/**
+	 * A cached file: its name in the cache directory, its size and the SHA-1 of
+	 * each of its chunks.
+	 */
+	@SuppressWarnings("serial")
+	private static class CacheEntry implements Serializable {
+		private final String key;
+		private final String filename;
+		private final long size;
+		private final String[] blockHashes;
+
+		CacheEntry(String key, String filename, long size, String[] blockHashes) {
+			this.key = key;
+			this.filename = filename;
+			this.size = size;
+			this.blockHashes = blockHashes;
+		}
+	}
+
+	ContentCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.directory.mkdirs();
+		this.loadIndex();
+	}
+
+	/**
+	 * Returns the validator of the response: its ETag, or its Last-Modified header
+	 * if it has no ETag, or null if it has neither (then it can't be cached).
+	 */
+	static String getValidator(HttpURLConnection httpUrlConnection) {
+		String validator = httpUrlConnection.getHeaderField("ETag");
+
+		if (validator == null) {
+			validator = httpUrlConnection.getHeaderField("Last-Modified");
+		}
+
+		return validator;
+	}
+
+	/**
+	 * Download the chunk hashes the server publishes for the url
+	 * (url.blockhashes), or null if it doesn't.
+	 */
+	static String[] getBlockHashes(String url) {
+		try {
+			HttpURLConnection httpUrlConnection = (HttpURLConnection) new URL(url + BLOCK_HASHES_SUFFIX)
+					.openConnection();
+			httpUrlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+			httpUrlConnection.setReadTimeout(READ_TIMEOUT);
+
+			if (httpUrlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				httpUrlConnection.disconnect();
+				return null;
+			}
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(httpUrlConnection.getInputStream()));
+			List<String> blockHashes = new ArrayList<String>();
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					blockHashes.add(line.trim().toLowerCase());
+				}
+			}
+
+			reader.close();
+
+			return blockHashes.toArray(new String[blockHashes.size()]);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Copy every missing chunk we can find in the cache into the file, and mark it
+	 * as downloaded. Every copied chunk is checked against its hash.
+	 *
+	 * @param blockHashes
+	 *            the SHA-1 of each chunk of the file, or null if the server does
+	 *            not publish them
+	 * @return the number of chunks served from the cache
+	 */
+	int fill(String url, String validator, String[] blockHashes, DownloadableMetadata downloadableMetadata,
+			long sizeOfFile) throws IOException {
+		CacheEntry sameFile = m_Entries.get(getKey(url, validator));
+		int numberOfChunks = (int) Math.ceil((double) sizeOfFile / CHUNK_SIZE);
+		int chunksFromCache = 0;
+
+		if (sameFile != null && sameFile.size == sizeOfFile) {
+			blockHashes = sameFile.blockHashes;
+		}
+
+		// e.g. resumed metadata of an older version of the file.
+		if (blockHashes == null || blockHashes.length != numberOfChunks
+				|| downloadableMetadata.getNumberOfChunks() != numberOfChunks) {
+			return 0;
+		}
+
+		// every place each chunk can be found in the cache, so when one cached file
+		// is damaged we can still use the others.
+		Map<String, List<CachedChunk>> chunksOfHash = new HashMap<String, List<CachedChunk>>();
+
+		for (CacheEntry entry : m_Entries.values()) {
+			for (int i = 0; i < entry.blockHashes.length; i++) {
+				List<CachedChunk> cachedChunks = chunksOfHash.get(entry.blockHashes[i]);
+
+				if (cachedChunks == null) {
+					cachedChunks = new ArrayList<CachedChunk>();
+					chunksOfHash.put(entry.blockHashes[i], cachedChunks);
+				}
+
+				cachedChunks.add(new CachedChunk(entry, i));
+			}
+		}
+
+		RandomAccessFile file = new RandomAccessFile(downloadableMetadata.getFilename(), "rw");
+		Map<CacheEntry, RandomAccessFile> openedFiles = new HashMap<CacheEntry, RandomAccessFile>();
+		Set<CacheEntry> brokenEntries = new HashSet<CacheEntry>();
+		byte[] buffer = new byte[CHUNK_SIZE];
+
+		try {
+			for (int i = 0; i < numberOfChunks; i++) {
+				List<CachedChunk> cachedChunks = chunksOfHash.get(blockHashes[i]);
+				int length = getChunkLength(i, sizeOfFile);
+
+				if (downloadableMetadata.isChunkDownloaded(i) || cachedChunks == null) {
+					continue;
+				}
+
+				for (CachedChunk cachedChunk : cachedChunks) {
+					// same hash, same content, so it must have the same length.
+					if (brokenEntries.contains(cachedChunk.entry)
+							|| getChunkLength(cachedChunk.chunkId, cachedChunk.entry.size) != length) {
+						continue;
+					}
+
+					if (!readCachedChunk(cachedChunk.entry, cachedChunk.chunkId, buffer, length, openedFiles)) {
+						brokenEntries.add(cachedChunk.entry);
+						continue;
+					}
+
+					file.seek((long) i * CHUNK_SIZE);
+					file.write(buffer, 0, length);
+					downloadableMetadata.addRange(i);
+					chunksFromCache++;
+					break;
+				}
+			}
+		} finally {
+			file.close();
+
+			for (RandomAccessFile cachedFile : openedFiles.values()) {
+				cachedFile.close();
+			}
+		}
+
+		// mark the entries we used as recently used, and drop the broken ones.
+		for (CacheEntry entry : openedFiles.keySet()) {
+			m_Entries.get(entry.key);
+		}
+
+		for (CacheEntry entry : brokenEntries) {
+			System.err.println("Dropping a damaged file from the cache: " + entry.filename);
+			m_Entries.remove(entry.key);
+			new File(directory, entry.filename).delete();
+		}
+
+		saveIndex();
+
+		return chunksFromCache;
+	}
+
+	// read a chunk of a cached file into the buffer, and check it against its hash.
+	// returns false if the cached file is missing, too short or damaged.
+	private boolean readCachedChunk(CacheEntry entry, int chunkId, byte[] buffer, int length,
+			Map<CacheEntry, RandomAccessFile> openedFiles) {
+		try {
+			RandomAccessFile cachedFile = openedFiles.get(entry);
+
+			if (cachedFile == null) {
+				cachedFile = new RandomAccessFile(new File(directory, entry.filename), "r");
+				openedFiles.put(entry, cachedFile);
+			}
+
+			cachedFile.seek((long) chunkId * CHUNK_SIZE);
+			cachedFile.readFully(buffer, 0, length);
+		} catch (IOException e) {
+			return false;
+		}
+
+		return toHex(sha1(buffer, length)).equals(entry.blockHashes[chunkId]);
+	}
+
+	/**
+	 * Store a completely downloaded file in the cache, and evict the least
+	 * recently used files until the cache fits in its size.
+	 */
+	void store(String url, String validator, String filename) throws IOException {
+		File source = new File(filename);
+		long size = source.length();
+
+		if (size > maxBytes) {
+			return;
+		}
+
+		String key = getKey(url, validator);
+		CacheEntry previous = m_Entries.remove(key);
+
+		if (previous != null) {
+			new File(directory, previous.filename).delete();
+		}
+
+		byte[] keyBytes = key.getBytes("UTF-8");
+		String cachedFilename = toHex(sha1(keyBytes, keyBytes.length));
+		String[] blockHashes = new String[(int) Math.ceil((double) size / CHUNK_SIZE)];
+		RandomAccessFile reader = new RandomAccessFile(source, "r");
+		FileOutputStream writer = new FileOutputStream(new File(directory, cachedFilename));
+		byte[] buffer = new byte[CHUNK_SIZE];
+
+		try {
+			for (int i = 0; i < blockHashes.length; i++) {
+				int length = getChunkLength(i, size);
+
+				reader.readFully(buffer, 0, length);
+				writer.write(buffer, 0, length);
+				blockHashes[i] = toHex(sha1(buffer, length));
+			}
+		} catch (IOException e) {
+			// don't leave a partial copy behind.
+			writer.close();
+			new File(directory, cachedFilename).delete();
+			throw e;
+		} finally {
+			reader.close();
+			writer.close();
+		}
+
+		m_Entries.put(key, new CacheEntry(key, cachedFilename, size, blockHashes));
+		evict();
+		saveIndex();
+	}
+
+	/**
+	 * Drop every cached version of the url (e.g. a file we found to be damaged).
+	 */
+	void remove(String url) {
+		Iterator<CacheEntry> entries = m_Entries.values().iterator();
+
+		while (entries.hasNext()) {
+			CacheEntry entry = entries.next();
+
+			if (entry.key.startsWith(getKey(url, ""))) {
+				new File(directory, entry.filename).delete();
+				entries.remove();
+			}
+		}
+
+		saveIndex();
+	}
+
+	private void evict() {
+		long cachedBytes = 0;
+
+		for (CacheEntry entry : m_Entries.values()) {
+			cachedBytes += entry.size;
+		}
+
+		// the iteration order is from the least recently used.
+		Iterator<CacheEntry> entries = m_Entries.values().iterator();
+
+		while (cachedBytes > maxBytes && entries.hasNext()) {
+			CacheEntry entry = entries.next();
+			new File(directory, entry.filename).delete();
+			cachedBytes -= entry.size;
+			entries.remove();
+		}
+	}
+
+	private int getChunkLength(int chunkId, long sizeOfFile) {
+		return (int) Math.min(CHUNK_SIZE, sizeOfFile - (long) chunkId * CHUNK_SIZE);
+	}
+
+	private static String getKey(String url, String validator) {
+		return url + "\n" + validator;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void loadIndex() {
+		m_Entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+		File indexFile = new File(directory, INDEX_FILENAME);
+
+		if (!indexFile.exists()) {
+			return;
+		}
+
+		try {
+			ObjectInputStream input = new ObjectInputStream(new FileInputStream(indexFile));
+			m_Entries.putAll((Map<String, CacheEntry>) input.readObject());
+			input.close();
+		} catch (Exception ex) {
+			System.err.println("Problem occure when trying to read the cache index, starting with an empty cache.");
+		}
+	}
+
+	private void saveIndex() {
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(
+					new FileOutputStream(new File(directory, INDEX_FILENAME)));
+			out.writeObject(m_Entries);
+			out.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	static byte[] sha1(byte[] data, int length) {
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+			messageDigest.update(data, 0, length);
+
+			return messageDigest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-1.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+
+		return hex.toString();
+	}
+}
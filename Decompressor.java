@@ -0,0 +1,260 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses a gzip file while it is being downloaded.
+ *
+ * The compressed bytes arrive in order through the channel returned by
+ * getInputChannel() (fed by the ChunkStreamer), are passed to this thread
+ * through a BlockingQueue, and the decompressed bytes are written to the
+ * target file. Closing the channel sends the finish marker.
+ *
+ * The queue is bounded, so when decompressing falls behind the FileWriter
+ * waits instead of keeping the compressed file in memory. If the decompressor
+ * stopped (e.g. a corrupt file), writing to the channel fails.
+ */
+class Decompressor implements Runnable {
+	static final String COMPRESSED_SUFFIX = ".gz";
+	private static final int CONNECT_TIMEOUT = 500;
+	private static final int READ_TIMEOUT = 2000;
+	private static final int QUEUE_CAPACITY = 256;
+	private static final long OFFER_TIMEOUT_MILLIS = 100;
+	private final String filename;
+	private final BlockingQueue<Chunk> compressedQueue = new LinkedBlockingQueue<Chunk>(QUEUE_CAPACITY);
+	private final WritableByteChannel inputChannel = new QueueChannel();
+	private long m_CompressedOffset = 0;
+	private volatile long m_DecompressedOffset = 0;
+	private volatile boolean k_DecompressionSucceeded = false;
+	private volatile boolean k_DecompressorStopped = false;
+	private volatile boolean k_ReadingFailed = false;
+	private volatile boolean k_ReachedFinishMarker = false;
+
+	Decompressor(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Check whether the server has a compressed sibling (url + ".gz") of the
+	 * given url.
+	 */
+	static boolean isCompressedSiblingAvailable(String url) {
+		try {
+			HttpURLConnection httpUrlConnection = (HttpURLConnection) new URL(url + COMPRESSED_SUFFIX)
+					.openConnection();
+			httpUrlConnection.setRequestMethod("HEAD");
+			httpUrlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+			httpUrlConnection.setReadTimeout(READ_TIMEOUT);
+			boolean available = httpUrlConnection.getResponseCode() == HttpURLConnection.HTTP_OK
+					&& httpUrlConnection.getContentLength() > 0;
+			httpUrlConnection.disconnect();
+
+			return available;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	WritableByteChannel getInputChannel() {
+		return inputChannel;
+	}
+
+	long getDecompressedOffset() {
+		return m_DecompressedOffset;
+	}
+
+	boolean isSucceeded() {
+		return k_DecompressionSucceeded;
+	}
+
+	/**
+	 * Whether the compressed data itself is bad (not a gzip file, damaged, or
+	 * with trailing garbage). Running out of input is only bad if the whole
+	 * compressed file was sent, otherwise the download just stopped early. A
+	 * failure to write the decompressed file doesn't count.
+	 *
+	 * @param inputWasComplete
+	 *            whether the whole compressed file was written to the channel
+	 */
+	boolean isInputCorrupt(boolean inputWasComplete) {
+		return k_ReadingFailed && (inputWasComplete || !k_ReachedFinishMarker);
+	}
+
+	private void decompress() throws IOException {
+		byte[] buffer = new byte[HTTPRangeGetter.CHUNK_SIZE];
+		ChunkQueueInputStream compressedStream = new ChunkQueueInputStream();
+		InputStream reader = openGzipStream(compressedStream);
+		OutputStream writer = new FileOutputStream(filename);
+		int lengthOfBytesWeRead;
+
+		try {
+			while ((lengthOfBytesWeRead = readCompressed(reader, buffer)) != -1) {
+				writer.write(buffer, 0, lengthOfBytesWeRead);
+				m_DecompressedOffset += lengthOfBytesWeRead;
+			}
+
+			// GZIPInputStream goes on to the next member by itself (see
+			// ChunkQueueInputStream.available()), but it silently stops at bytes that
+			// don't look like a gzip header. anything left means we lost data.
+			if (compressedStream.read() != -1) {
+				k_ReadingFailed = true;
+				throw new IOException("Unexpected data after the end of the gzip stream");
+			}
+
+			k_DecompressionSucceeded = true;
+		} finally {
+			writer.close();
+			reader.close();
+		}
+	}
+
+	// the header is read here already, so this fails if it is not a gzip file.
+	private InputStream openGzipStream(InputStream compressedStream) throws IOException {
+		try {
+			return new GZIPInputStream(compressedStream);
+		} catch (IOException e) {
+			k_ReadingFailed = true;
+			throw e;
+		}
+	}
+
+	// read from the gzip stream, and remember if that (and not the writing) failed.
+	private int readCompressed(InputStream reader, byte[] buffer) throws IOException {
+		try {
+			return reader.read(buffer);
+		} catch (IOException e) {
+			k_ReadingFailed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			this.decompress();
+		} catch (IOException e) {
+			System.err.println("Decompression failed: " + e);
+		} finally {
+			k_DecompressorStopped = true;
+		}
+	}
+
+	// wait for room in the queue, as long as the decompressor is still reading it.
+	private void putInQueue(Chunk chunk) throws IOException {
+		try {
+			while (!compressedQueue.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (k_DecompressorStopped) {
+					throw new IOException("The decompressor stopped");
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * The channel the compressed bytes are written to, in order.
+	 */
+	private class QueueChannel implements WritableByteChannel {
+		private boolean k_ChannelIsOpen = true;
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int length = src.remaining();
+			byte[] data = new byte[length];
+			src.get(data);
+			putInQueue(new Chunk(data, m_CompressedOffset, length));
+			m_CompressedOffset += length;
+
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return k_ChannelIsOpen;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (k_ChannelIsOpen) {
+				k_ChannelIsOpen = false;
+				// send finish marker to the decompressor.
+				putInQueue(new Chunk(null, -1, -1));
+			}
+		}
+	}
+
+	/**
+	 * Reads the compressed chunks from the queue, until the finish marker.
+	 */
+	private class ChunkQueueInputStream extends InputStream {
+		private Chunk m_CurrentChunk = null;
+		private int m_PositionInChunk = 0;
+
+		@Override
+		public int read() throws IOException {
+			byte[] singleByte = new byte[1];
+
+			return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			if (!waitForData()) {
+				return -1;
+			}
+
+			int length = Math.min(len, m_CurrentChunk.getSize_in_bytes() - m_PositionInChunk);
+			System.arraycopy(m_CurrentChunk.getData(), m_PositionInChunk, b, off, length);
+			m_PositionInChunk += length;
+
+			return length;
+		}
+
+		/**
+		 * At the end of a gzip member, GZIPInputStream reads the next one only if
+		 * available() is positive (or it still buffers enough bytes for a header).
+		 * The next bytes may not have been downloaded yet, so wait for them: this
+		 * returns 0 only at the finish marker.
+		 */
+		@Override
+		public int available() throws IOException {
+			if (!waitForData()) {
+				return 0;
+			}
+
+			return m_CurrentChunk.getSize_in_bytes() - m_PositionInChunk;
+		}
+
+		// wait until the current chunk has unread bytes, returns false at the finish
+		// marker.
+		private boolean waitForData() throws IOException {
+			while (m_CurrentChunk == null || (m_CurrentChunk.getData() != null
+					&& m_PositionInChunk == m_CurrentChunk.getSize_in_bytes())) {
+				try {
+					m_CurrentChunk = compressedQueue.take();
+					m_PositionInChunk = 0;
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+
+			k_ReachedFinishMarker = m_CurrentChunk.getData() == null;
+
+			return !k_ReachedFinishMarker;
+		}
+	}
+}
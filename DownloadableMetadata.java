@@ -1,4 +1,6 @@
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 
@@ -12,9 +14,14 @@ import java.util.Arrays;
  *
  * CHALLENGE: try to avoid metadata disk footprint of O(n) in the average case
  * HINT: avoid the obvious bitmap solution, and think about ranges...
+ *
+ * The FileWriter updates the metadata while the main thread (and readers of
+ * isRangeDownloaded()) query it, so every access to the chunks is synchronized.
  */
 @SuppressWarnings("serial")
 class DownloadableMetadata implements Serializable {
+	// fixed to the value of the first version, so its metadata files can be resumed.
+	private static final long serialVersionUID = -3100045051423739657L;
 	private final String metadataFilename;
 	private String filename;
 	private String url;
@@ -45,7 +52,11 @@ class DownloadableMetadata implements Serializable {
 		return path.substring(path.lastIndexOf('/') + 1, path.length());
 	}
 
-	void addRange(int chunkId) {
+	int getNumberOfChunks() {
+		return m_NumberOfChunks;
+	}
+
+	synchronized void addRange(int chunkId) {
 		// check whether that the first time we read that specific chunk ID.
 		if (m_MissingChunks[chunkId] != false) {
 			m_MissingChunks[chunkId] = false;
@@ -53,7 +64,55 @@ class DownloadableMetadata implements Serializable {
 		}
 	}
 
-	public int getPercentage() {
+	synchronized boolean isChunkDownloaded(int chunkId) {
+		return chunkId >= 0 && chunkId < m_NumberOfChunks && m_MissingChunks[chunkId] == false;
+	}
+
+	// returns the index of the first chunk we didn't download yet, or -1 if there is none.
+	int getFirstMissingChunk() {
+		return getFirstMissingChunk(0);
+	}
+
+	synchronized int getFirstMissingChunk(int fromChunkId) {
+		for (int i = Math.max(fromChunkId, 0); i < m_NumberOfChunks; i++) {
+			if (m_MissingChunks[i] == true) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	// returns the index of the last chunk we didn't download yet, or -1 if there is none.
+	synchronized int getLastMissingChunk() {
+		for (int i = m_NumberOfChunks - 1; i >= 0; i--) {
+			if (m_MissingChunks[i] == true) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Check whether the bytes start..end (inclusive) are already on disk, so they
+	 * can be read while the rest of the file is downloading.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if start is negative or after end
+	 */
+	boolean isRangeDownloaded(long start, long end) {
+		if (start < 0 || start > end) {
+			throw new IllegalArgumentException("Bad range " + start + "-" + end);
+		}
+
+		int lastChunk = (int) (end / CHUNK_SIZE);
+		int firstMissingChunk = getFirstMissingChunk((int) (start / CHUNK_SIZE));
+
+		return lastChunk < m_NumberOfChunks && (firstMissingChunk < 0 || firstMissingChunk > lastChunk);
+	}
+
+	public synchronized int getPercentage() {
 		// we multiply by 100 for getting the percentage downloaded
 		return (int) (((double) m_NumberOfChunksTheDownloaded / m_NumberOfChunks) * 100);
 	}
@@ -62,11 +121,11 @@ class DownloadableMetadata implements Serializable {
 		return filename;
 	}
 
-	boolean isCompleted() {
+	synchronized boolean isCompleted() {
 		return k_downloadIsCompleted;
 	}
 
-	void setDownLoadIsCompleted() {
+	synchronized void setDownLoadIsCompleted() {
 		k_downloadIsCompleted = true;
 	}
 
@@ -91,10 +150,11 @@ class DownloadableMetadata implements Serializable {
 		return metaDataFile.exists();
 	}
 
-	Range getMissingRange(Range givenRange) {
+	synchronized Range getMissingRange(Range givenRange) {
 		Range returnRange = null;
 		int i = (int) Math.floor((double) givenRange.getStart() / CHUNK_SIZE);
-		int topLimitRange = (int) Math.floor((double) givenRange.getEnd() / CHUNK_SIZE);
+		int topLimitRange = Math.min((int) Math.floor((double) givenRange.getEnd() / CHUNK_SIZE),
+				m_NumberOfChunks - 1);
 
 		while (i <= topLimitRange) {
 			if (returnRange == null) {
@@ -105,7 +165,9 @@ class DownloadableMetadata implements Serializable {
 			} else {
 				if (m_MissingChunks[i] == false) // if that is our first download chunk after we set the start range.
 				{
-					returnRange = new Range(returnRange.getStart(), (long) Math.ceil((double) (i - 1) * CHUNK_SIZE));
+					// the range ends with the last byte of the previous (missing) chunk.
+					returnRange = new Range(returnRange.getStart(), (long) i * CHUNK_SIZE - 1);
+					break;
 				}
 			}
 
@@ -123,4 +185,9 @@ class DownloadableMetadata implements Serializable {
 	String getUrl() {
 		return url;
 	}
+
+	// serialize a consistent snapshot of the chunks.
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+	}
 }
@@ -0,0 +1,482 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stress test for the concurrency of the download manager.
+ *
+ * 1. TokenBucket: many threads take and add tokens at once. No token may be
+ * lost or taken twice, and terminate() must wake every blocked taker.
+ *
+ * 2. DownloadableMetadata: a writer marks chunks while readers query the
+ * missing ranges. The readers must never see a chunk "un-download", and every
+ * missing range must cover whole chunks.
+ *
+ * 3. Downloads: the file is downloaded from a local HTTP server that injects
+ * resets, stalls, short reads, wrong Content-Range replies and replies that
+ * ignore the range. Every run must produce the file byte for byte (and the
+ * same bytes on the pipe, when streaming). Some runs use a server that ignores
+ * every Range header (it always sends the whole file), and a last run uses a
+ * server that always answers with the wrong range: that download must give up
+ * instead of retrying forever.
+ *
+ * The faults are picked from the seed, the run, the requested range and the
+ * attempt, so a failing run can be replayed with the same seed. A range is
+ * served without faults after MAX_FAULTY_ATTEMPTS attempts, so every download
+ * can finish.
+ *
+ * usage: java FaultInjectionTest [RUNS] [SEED] (writes its files to the
+ * current directory)
+ */
+public class FaultInjectionTest {
+	private static final int DEFAULT_RUNS = 20;
+	private static final long DEFAULT_SEED = 2018;
+	private static final int FILE_SIZE = 300001;
+	private static final int MAX_WORKERS = 8;
+	private static final int MAX_FAULTY_ATTEMPTS = 3;
+	private static final long STALL_MILLIS = 2500;
+	private static final long JOIN_TIMEOUT_MILLIS = 10000;
+
+	private enum Fault {
+		NONE, SHORT_READS, RESET, STALL, WRONG_CONTENT_RANGE, IGNORE_RANGE
+	}
+
+	private enum ServerMode {
+		// inject faults, but serve every range cleanly after MAX_FAULTY_ATTEMPTS.
+		FAULTY,
+		// ignore the Range header, always send the whole file.
+		NO_RANGE_SUPPORT,
+		// always send a Content-Range that starts before the requested range.
+		WRONG_RANGES
+	}
+
+	private static final PrintStream k_Out = System.out;
+	private static int m_Failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		int runs = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_RUNS;
+		long seed = args.length >= 2 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+
+		k_Out.printf("Fault injection test, %d runs, seed %d\n", runs, seed);
+		testTokenBucket();
+		testMetadata(seed);
+		testDownloads(runs, seed);
+
+		k_Out.println(m_Failures == 0 ? "All checks passed" : m_Failures + " checks failed");
+		System.exit(m_Failures == 0 ? 0 : 1);
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			m_Failures++;
+			k_Out.println("FAILED: " + description);
+		}
+	}
+
+	private static boolean joinAll(List<Thread> threads) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MILLIS;
+
+		for (Thread thread : threads) {
+			thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+
+			if (thread.isAlive()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static void testTokenBucket() throws InterruptedException {
+		final int takers = 16;
+		final int takesPerTaker = 2000;
+		final int adders = 4;
+		final TokenBucket tokenBucket = new TokenBucket(0);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		// every token added is taken exactly once: if add() loses an update, a taker
+		// waits forever; if two takers get the same tokens, the bucket has extra.
+		for (int i = 0; i < takers; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < takesPerTaker; j++) {
+						tokenBucket.take(1);
+					}
+				}
+			}));
+		}
+
+		for (int i = 0; i < adders; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < takers * takesPerTaker / adders; j++) {
+						tokenBucket.add(1);
+					}
+				}
+			}));
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		check(joinAll(threads), "TokenBucket: takers got every added token");
+
+		// the bucket must be empty now, so this taker blocks until terminate().
+		Thread lateTaker = new Thread(new Runnable() {
+			public void run() {
+				tokenBucket.take(1);
+			}
+		});
+		lateTaker.start();
+		lateTaker.join(200);
+		check(lateTaker.isAlive(), "TokenBucket: no token was taken twice");
+
+		// terminated() must be visible to a thread spinning on it.
+		Thread spinner = new Thread(new Runnable() {
+			public void run() {
+				while (!tokenBucket.terminated()) {
+				}
+			}
+		});
+		spinner.start();
+		tokenBucket.terminate();
+		check(joinAll(Arrays.asList(lateTaker, spinner)), "TokenBucket: terminate() wakes and stops every thread");
+	}
+
+	private static void testMetadata(long seed) throws InterruptedException {
+		final int chunkSize = HTTPRangeGetter.CHUNK_SIZE;
+		final int numberOfChunks = 5000;
+		final long sizeOfFile = (long) numberOfChunks * chunkSize - 123;
+		final DownloadableMetadata downloadableMetadata = new DownloadableMetadata("http://localhost/metadata.bin",
+				numberOfChunks);
+		final List<Integer> order = new ArrayList<Integer>();
+		final AtomicInteger readerErrors = new AtomicInteger();
+		final AtomicInteger violations = new AtomicInteger();
+		final boolean[] writerDone = new boolean[1];
+		List<Thread> readers = new ArrayList<Thread>();
+
+		for (int i = 0; i < numberOfChunks; i++) {
+			order.add(i);
+		}
+
+		Collections.shuffle(order, new Random(seed));
+
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				for (int chunkId : order) {
+					downloadableMetadata.addRange(chunkId);
+				}
+
+				synchronized (writerDone) {
+					writerDone[0] = true;
+				}
+			}
+		});
+
+		for (int i = 0; i < 4; i++) {
+			final Random random = new Random(seed + i);
+
+			readers.add(new Thread(new Runnable() {
+				public void run() {
+					boolean[] seenDownloaded = new boolean[numberOfChunks];
+					int previousFirstMissing = 0;
+					int previousPercentage = 0;
+
+					try {
+						while (true) {
+							synchronized (writerDone) {
+								if (writerDone[0]) {
+									break;
+								}
+							}
+
+							// a missing range covers whole missing chunks.
+							long start = (long) random.nextInt(numberOfChunks) * chunkSize;
+							long end = Math.min(start + (long) random.nextInt(64) * chunkSize + chunkSize, sizeOfFile) - 1;
+							Range missing = downloadableMetadata.getMissingRange(new Range(start, end));
+
+							if (missing != null && (missing.getStart() % chunkSize != 0 || missing.getStart() < start
+									|| missing.getEnd() > end
+									|| (missing.getEnd() != end && (missing.getEnd() + 1) % chunkSize != 0))) {
+								violations.incrementAndGet();
+							}
+
+							// a downloaded chunk never becomes missing again.
+							int chunkId = random.nextInt(numberOfChunks);
+							boolean downloaded = downloadableMetadata.isRangeDownloaded((long) chunkId * chunkSize,
+									(long) chunkId * chunkSize);
+
+							if (seenDownloaded[chunkId] && !downloaded) {
+								violations.incrementAndGet();
+							}
+
+							seenDownloaded[chunkId] |= downloaded;
+
+							// the first missing chunk and the percentage only grow.
+							int firstMissing = downloadableMetadata.getFirstMissingChunk();
+							int percentage = downloadableMetadata.getPercentage();
+
+							if ((firstMissing >= 0 && firstMissing < previousFirstMissing)
+									|| percentage < previousPercentage) {
+								violations.incrementAndGet();
+							}
+
+							previousFirstMissing = firstMissing < 0 ? numberOfChunks : firstMissing;
+							previousPercentage = percentage;
+						}
+					} catch (RuntimeException e) {
+						readerErrors.incrementAndGet();
+					}
+				}
+			}));
+		}
+
+		for (Thread reader : readers) {
+			reader.start();
+		}
+
+		writer.start();
+		List<Thread> threads = new ArrayList<Thread>(readers);
+		threads.add(writer);
+
+		check(joinAll(threads), "DownloadableMetadata: writer and readers finished");
+		check(readerErrors.get() == 0, "DownloadableMetadata: readers got no exceptions");
+		check(violations.get() == 0, "DownloadableMetadata: readers saw consistent chunks (" + violations.get()
+				+ " violations)");
+		check(downloadableMetadata.getMissingRange(new Range(0L, sizeOfFile - 1)) == null,
+				"DownloadableMetadata: no missing range at the end");
+		check(downloadableMetadata.getFirstMissingChunk() == -1 && downloadableMetadata.getPercentage() == 100,
+				"DownloadableMetadata: every chunk downloaded");
+		check(downloadableMetadata.isRangeDownloaded(0, sizeOfFile - 1),
+				"DownloadableMetadata: the whole file is on disk");
+
+		try {
+			downloadableMetadata.isRangeDownloaded(10, 5);
+			check(false, "DownloadableMetadata: isRangeDownloaded() rejects an inverted range");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static void testDownloads(int runs, long seed) throws Exception {
+		Random random = new Random(seed);
+		byte[] content = new byte[FILE_SIZE];
+		random.nextBytes(content);
+
+		FaultyHandler handler = new FaultyHandler(content, seed);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", handler);
+		ExecutorService serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+
+		// the downloads report their progress on System.out.
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+
+		try {
+			for (int run = 0; run < runs; run++) {
+				int numberOfWorkers = 1 + random.nextInt(MAX_WORKERS);
+				ServerMode serverMode = random.nextInt(4) == 0 ? ServerMode.NO_RANGE_SUPPORT : ServerMode.FAULTY;
+				boolean streaming = random.nextBoolean();
+				String filename = "fault-injection-" + run + ".bin";
+				String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/" + filename;
+				ByteArrayOutputStream pipeContent = new ByteArrayOutputStream();
+				WritableByteChannel pipe = streaming ? Channels.newChannel(pipeContent) : null;
+				RangeOrderingPolicy rangeOrderingPolicy = streaming ? new RangeOrderingPolicy.SequentialFirst()
+						: (random.nextBoolean() ? new RangeOrderingPolicy.TailFirst() : null);
+
+				handler.startRun(run, serverMode);
+				boolean downloadSucceeded = IdcDm.DownloadURL(url, numberOfWorkers, 1000000000L, pipe,
+						rangeOrderingPolicy, null);
+				String description = String.format("run %d (%d workers%s, %s)", run, numberOfWorkers,
+						streaming ? ", streaming" : "", serverMode == ServerMode.FAULTY
+								? handler.getFaults() + " faults" : "no range support");
+				File file = new File(filename);
+
+				check(downloadSucceeded, description + ": download succeeded");
+				check(file.exists() && Arrays.equals(Files.readAllBytes(file.toPath()), content),
+						description + ": file is byte-exact");
+
+				if (streaming) {
+					check(Arrays.equals(pipeContent.toByteArray(), content), description + ": pipe is byte-exact");
+				}
+
+				k_Out.printf("%s done\n", description);
+				deleteDownloadFiles(filename);
+			}
+
+			// a server that always answers with the wrong range: the download must stop.
+			String filename = "fault-injection-wrong-ranges.bin";
+			long startTime = System.currentTimeMillis();
+			handler.startRun(runs, ServerMode.WRONG_RANGES);
+			boolean downloadSucceeded = IdcDm.DownloadURL(
+					"http://127.0.0.1:" + server.getAddress().getPort() + "/" + filename, 2, 1000000000L, null,
+					null, null);
+			check(!downloadSucceeded && System.currentTimeMillis() - startTime < JOIN_TIMEOUT_MILLIS,
+					"wrong ranges: the download gives up");
+			k_Out.println("wrong ranges run done");
+			deleteDownloadFiles(filename);
+		} finally {
+			System.setOut(k_Out);
+			server.stop(0);
+			serverThreads.shutdownNow();
+		}
+	}
+
+	// delete the file, its metadata, and the temporary metadata files a failed
+	// download leaves behind.
+	private static void deleteDownloadFiles(String filename) {
+		new File(filename).delete();
+		new File(DownloadableMetadata.getMetadataName(filename)).delete();
+
+		for (File file : new File(".").listFiles()) {
+			if (file.getName().startsWith(filename) && file.getName().endsWith(".tmp")) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Serves the content, and injects a fault into the reply of some range
+	 * requests.
+	 */
+	private static class FaultyHandler implements HttpHandler {
+		private final byte[] content;
+		private final long seed;
+		private final ConcurrentHashMap<Long, AtomicInteger> m_Attempts = new ConcurrentHashMap<Long, AtomicInteger>();
+		private final AtomicLong m_Faults = new AtomicLong();
+		private volatile int m_Run;
+		private volatile ServerMode m_Mode = ServerMode.FAULTY;
+
+		FaultyHandler(byte[] content, long seed) {
+			this.content = content;
+			this.seed = seed;
+		}
+
+		void startRun(int run, ServerMode mode) {
+			m_Run = run;
+			m_Mode = mode;
+			m_Attempts.clear();
+			m_Faults.set(0);
+		}
+
+		long getFaults() {
+			return m_Faults.get();
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+
+			try {
+				if (rangeHeader == null) {
+					exchange.sendResponseHeaders(200, content.length);
+					writeBody(exchange, 0, content.length, null);
+					return;
+				}
+
+				String[] bounds = rangeHeader.substring("bytes=".length()).split("-");
+				int start = Integer.parseInt(bounds[0]);
+				int end = Math.min(Integer.parseInt(bounds[1]), content.length - 1);
+				m_Attempts.putIfAbsent((long) start, new AtomicInteger());
+				int attempt = m_Attempts.get((long) start).getAndIncrement();
+				Random random = new Random(seed * 31 + m_Run * 1000003L + start * 17L + attempt);
+				Fault fault = attempt < MAX_FAULTY_ATTEMPTS ? pickFault(random) : Fault.NONE;
+
+				if (m_Mode == ServerMode.NO_RANGE_SUPPORT) {
+					fault = Fault.IGNORE_RANGE;
+				} else if (m_Mode == ServerMode.WRONG_RANGES) {
+					fault = Fault.WRONG_CONTENT_RANGE;
+				}
+
+				if (fault != Fault.NONE) {
+					m_Faults.incrementAndGet();
+				}
+
+				if (fault == Fault.IGNORE_RANGE) {
+					exchange.sendResponseHeaders(200, content.length);
+					writeBody(exchange, 0, content.length, random);
+					return;
+				}
+
+				if (fault == Fault.WRONG_CONTENT_RANGE) {
+					start = start == 0 ? 1 : Math.max(0, start - 1 - random.nextInt(5000));
+				}
+
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + start + "-" + end + "/" + content.length);
+				exchange.sendResponseHeaders(206, end - start + 1);
+
+				if (fault == Fault.RESET) {
+					// close the connection in the middle of the body.
+					writeBody(exchange, start, start + random.nextInt(end - start + 1), random);
+				} else if (fault == Fault.STALL) {
+					// stop sending for longer than the read timeout.
+					int middle = start + random.nextInt(end - start + 1);
+					writeBody(exchange, start, middle, random);
+					Thread.sleep(STALL_MILLIS);
+					writeBody(exchange, middle, end + 1, random);
+				} else {
+					writeBody(exchange, start, end + 1, fault == Fault.SHORT_READS ? random : null);
+				}
+			} catch (IOException | InterruptedException e) {
+				// the client went away, e.g. after a stall.
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private static Fault pickFault(Random random) {
+			int dice = random.nextInt(100);
+
+			if (dice < 40) {
+				return Fault.NONE;
+			} else if (dice < 60) {
+				return Fault.SHORT_READS;
+			} else if (dice < 75) {
+				return Fault.RESET;
+			} else if (dice < 80) {
+				return Fault.STALL;
+			} else if (dice < 90) {
+				return Fault.WRONG_CONTENT_RANGE;
+			}
+
+			return Fault.IGNORE_RANGE;
+		}
+
+		// write content[from, to), in small flushed pieces when random is given.
+		private void writeBody(HttpExchange exchange, int from, int to, Random random) throws IOException {
+			OutputStream body = exchange.getResponseBody();
+
+			while (from < to) {
+				int length = random == null ? to - from : Math.min(to - from, 1 + random.nextInt(3000));
+				body.write(content, from, length);
+				body.flush();
+				from += length;
+			}
+		}
+	}
+}
@@ -9,11 +9,18 @@ import java.util.concurrent.BlockingQueue;
  * file's content or metadata synchronously to the underlying storage device.
  */
 public class FileWriter implements Runnable {
+	// a chunk without data marks the end of the download, or a flush request.
+	static final long FINISH_MARKER_OFFSET = -1;
+	static final long FLUSH_MARKER_OFFSET = -2;
 	private final BlockingQueue<Chunk> chunkQueue;
 	private DownloadableMetadata downloadableMetadata;
 	private File metaDataFile;
 	private File tempFile;
+	private ChunkStreamer chunkStreamer;
 	private final int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+	private volatile boolean k_WriterFailed = false;
+	private long m_FlushesRequested = 0;
+	private long m_FlushesDone = 0;
 
 	FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue) throws IOException {
 		this.chunkQueue = chunkQueue;
@@ -22,9 +29,55 @@ public class FileWriter implements Runnable {
 				new File(System.getProperty("user.dir")));
 	}
 
+	FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue,
+			ChunkStreamer chunkStreamer) throws IOException {
+		this(downloadableMetadata, chunkQueue);
+		this.chunkStreamer = chunkStreamer;
+	}
+
+	/**
+	 * Block until every chunk queued so far was written (and streamed), so the
+	 * metadata is up to date. Returns false if the writer failed, then the
+	 * download must stop.
+	 */
+	synchronized boolean waitUntilQueueIsWritten() throws InterruptedException {
+		long flush = ++m_FlushesRequested;
+		chunkQueue.add(new Chunk(null, FLUSH_MARKER_OFFSET, -1));
+
+		while (m_FlushesDone < flush && !k_WriterFailed) {
+			wait();
+		}
+
+		return !k_WriterFailed;
+	}
+
+	boolean isFailed() {
+		return k_WriterFailed;
+	}
+
+	private synchronized void flushDone() {
+		m_FlushesDone++;
+		notifyAll();
+	}
+
+	private synchronized void writerFailed() {
+		k_WriterFailed = true;
+		notifyAll();
+	}
+
 	private void writeChunks() throws IOException, InterruptedException {
 		// declare the file
 		RandomAccessFile file = new RandomAccessFile(downloadableMetadata.getFilename(), "rw");
+
+		try {
+			writeChunks(file);
+		} finally {
+			// close the random access file when we finish our download.
+			file.close();
+		}
+	}
+
+	private void writeChunks(RandomAccessFile file) throws IOException, InterruptedException {
 		int previousPer = downloadableMetadata.getPercentage();
 		Chunk chunk = null;
 
@@ -33,7 +86,16 @@ public class FileWriter implements Runnable {
 		while (true) {
 			chunk = chunkQueue.take();
 
+			if (chunk.getData() == null && chunk.getOffset() == FLUSH_MARKER_OFFSET) {
+				flushDone();
+				continue;
+			}
+
 			if (chunk.getData() == null) {
+				if (chunkStreamer != null) {
+					chunkStreamer.finish(file);
+				}
+
 				downloadableMetadata.setDownLoadIsCompleted();
 				break;
 			}
@@ -44,15 +106,17 @@ public class FileWriter implements Runnable {
 			file.write(chunk.getData());
 			downloadableMetadata.addRange((int) ((double) offset / CHUNK_SIZE));
 
+			// emit the in-order prefix to the pipe, if we stream.
+			if (chunkStreamer != null) {
+				chunkStreamer.offer(chunk, file);
+			}
+
 			// serialize every change in percentage, for better performance.
 			if (previousPer < downloadableMetadata.getPercentage()) {
 				serialize();
 				previousPer = printPercentage(previousPer);
 			}
 		}
-
-		// close the random access file when we finish our download.
-		file.close();
 	}
 
 	// we use the swapping algorithm to save current meta-data to disk.
@@ -121,9 +185,12 @@ public class FileWriter implements Runnable {
 		try {
 			this.writeChunks();
 		} catch (IOException e) {
-			e.printStackTrace();
+			// e.g. the reader of the pipe went away.
+			System.err.println("Problem when writing the file: " + e.getMessage());
+			writerFailed();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+			writerFailed();
 		}
 	}
 }
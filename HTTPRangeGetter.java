@@ -13,10 +13,13 @@ public class HTTPRangeGetter implements Runnable {
 	static final int CHUNK_SIZE = 4096;
 	private static final int CONNECT_TIMEOUT = 500;
 	private static final int READ_TIMEOUT = 2000;
+	private static final int MAX_UNEXPECTED_RESPONSES = 5;
+	private static final long RETRY_DELAY_MILLIS = 250;
 	private final String url;
 	private final Range range;
 	private final BlockingQueue<Chunk> outQueue;
 	private TokenBucket tokenBucket;
+	private volatile boolean k_GetterFailed = false;
 
 	HTTPRangeGetter(String url, Range range, BlockingQueue<Chunk> outQueue, TokenBucket tokenBucket) {
 		this.url = url;
@@ -25,38 +28,49 @@ public class HTTPRangeGetter implements Runnable {
 		this.tokenBucket = tokenBucket;
 	}
 
+	/**
+	 * Whether the server kept sending replies for other ranges, so this range
+	 * can't be downloaded.
+	 */
+	boolean isFailed() {
+		return k_GetterFailed;
+	}
+
 	private void downloadRange() throws IOException, InterruptedException {
 		// initialize a buffer to store the bytes we read from the stream.
 		byte[] buffer = new byte[CHUNK_SIZE];
 
 		try {
-			// establish the connection
-			HttpURLConnection httpUrlConnection = (HttpURLConnection) new URL(url).openConnection();
-			httpUrlConnection.setRequestProperty("Accept-Encoding", "");
-			httpUrlConnection.setRequestProperty("Range",
-					"bytes=" + range.getStart().toString() + "-" + range.getEnd().toString());
-			httpUrlConnection.setConnectTimeout(CONNECT_TIMEOUT);
-			httpUrlConnection.setReadTimeout(READ_TIMEOUT);
-			httpUrlConnection.connect();
+			HttpURLConnection httpUrlConnection = connectToOurRange();
+
+			if (httpUrlConnection == null) {
+				return;
+			}
+
 			InputStream reader = httpUrlConnection.getInputStream();
 			int lengthOfBytesWeRead;
 			long offset = range.getStart();
 			Chunk chunkWeAddToQueue;
 
-			while (true) {
+			// the server ignored the range and sent the whole file, skip to our offset.
+			if (httpUrlConnection.getResponseCode() == HttpURLConnection.HTTP_OK
+					&& !skipFully(reader, buffer, range.getStart())) {
+				reader.close();
+				return;
+			}
+
+			while (offset <= range.getEnd()) {
 				try {
 					// in order to allow the thread to start downloading, it needs to have
 					// CHUNK_SIZE tokens available in the token bucket
 					tokenBucket.take(CHUNK_SIZE);
 
-					// recieve a data from the stream.
-					lengthOfBytesWeRead = reader.read(buffer, 0, CHUNK_SIZE);
-
-					if (lengthOfBytesWeRead == -1) {
-						break;
-					}
+					// recieve a whole chunk from the stream (the last one may be shorter).
+					int lengthOfChunk = (int) Math.min(CHUNK_SIZE, range.getEnd() - offset + 1);
+					lengthOfBytesWeRead = readFully(reader, buffer, lengthOfChunk);
 
-					if (offset > range.getEnd()) {
+					// the metadata marks whole chunks, so we never queue a partial one.
+					if (lengthOfBytesWeRead < lengthOfChunk) {
 						break;
 					}
 
@@ -88,6 +102,87 @@ public class HTTPRangeGetter implements Runnable {
 		}
 	}
 
+	// connect, and retry (with a growing delay) as long as the reply is not for our
+	// range. returns null, and marks the getter as failed, if the server keeps
+	// sending replies for other ranges.
+	private HttpURLConnection connectToOurRange() throws IOException, InterruptedException {
+		for (int attempt = 1;; attempt++) {
+			// establish the connection
+			HttpURLConnection httpUrlConnection = (HttpURLConnection) new URL(url).openConnection();
+			httpUrlConnection.setRequestProperty("Accept-Encoding", "");
+			httpUrlConnection.setRequestProperty("Range",
+					"bytes=" + range.getStart().toString() + "-" + range.getEnd().toString());
+			httpUrlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+			httpUrlConnection.setReadTimeout(READ_TIMEOUT);
+			httpUrlConnection.connect();
+
+			// the bytes must start at our offset, otherwise we would write them in the
+			// wrong place.
+			if (isResponseForOurRange(httpUrlConnection)) {
+				return httpUrlConnection;
+			}
+
+			System.out.println("Unexpected response for range " + range.getStart() + "-" + range.getEnd());
+			httpUrlConnection.disconnect();
+
+			if (attempt == MAX_UNEXPECTED_RESPONSES) {
+				k_GetterFailed = true;
+				return null;
+			}
+
+			Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+		}
+	}
+
+	// a 206 reply must start at our offset, a 200 reply (the server ignored the
+	// range) is the whole file, so we can skip to our offset.
+	private boolean isResponseForOurRange(HttpURLConnection httpUrlConnection) throws IOException {
+		int responseCode = httpUrlConnection.getResponseCode();
+
+		if (responseCode == HttpURLConnection.HTTP_OK) {
+			return true;
+		}
+
+		String contentRange = httpUrlConnection.getHeaderField("Content-Range");
+
+		return responseCode == HttpURLConnection.HTTP_PARTIAL && contentRange != null
+				&& contentRange.startsWith("bytes " + range.getStart() + "-");
+	}
+
+	// read until we have length bytes or the stream ends, and return how many we got.
+	private static int readFully(InputStream reader, byte[] buffer, int length) throws IOException {
+		int lengthOfBytesWeRead = 0;
+
+		while (lengthOfBytesWeRead < length) {
+			int lengthOfLastRead = reader.read(buffer, lengthOfBytesWeRead, length - lengthOfBytesWeRead);
+
+			if (lengthOfLastRead == -1) {
+				break;
+			}
+
+			lengthOfBytesWeRead += lengthOfLastRead;
+		}
+
+		return lengthOfBytesWeRead;
+	}
+
+	// read and drop length bytes (they still count against the rate limit), and
+	// return false if the stream ended before.
+	private boolean skipFully(InputStream reader, byte[] buffer, long length) throws IOException {
+		while (length > 0) {
+			tokenBucket.take(CHUNK_SIZE);
+			int lengthOfChunk = (int) Math.min(CHUNK_SIZE, length);
+
+			if (readFully(reader, buffer, lengthOfChunk) < lengthOfChunk) {
+				return false;
+			}
+
+			length -= lengthOfChunk;
+		}
+
+		return true;
+	}
+
 	@Override
 	public void run() {
 		try {
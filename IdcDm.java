@@ -1,10 +1,14 @@
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -12,12 +16,25 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class IdcDm {
 	private final static int k_InitalizeSizeForTokenBucket = 0;
 	private final static int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+	private final static String k_PipeOption = "--pipe";
+	private final static String k_CompressedOption = "--compressed";
+	private final static String k_OrderOption = "--order=";
+	private final static String k_CacheOption = "--cache";
+	private final static String k_CacheDirectoryName = ".idcdm_cache";
 	private static String currentDirectory = System.getProperty("user.dir");
 
 	/**
 	 * Receive arguments from the command-line, provide some feedback and start the
 	 * download.
 	 *
+	 * With --pipe, the file is also written in order to stdout while it is being
+	 * downloaded (e.g. "java IdcDm --pipe URL 4 | tar x"), and all feedback goes
+	 * to stderr. With --compressed, URL.gz is downloaded instead when the server
+	 * has it, and decompressed into the file while downloading. With --order, the
+	 * given part of the file (head, tail or hot byte ranges) is downloaded first.
+	 * With --cache, chunks that were already downloaded before (same URL and
+	 * validator, or same chunk hash) are copied from a local cache.
+	 *
 	 * @param args
 	 *            command-line arguments
 	 * @throws InterruptedException
@@ -25,9 +42,50 @@ public class IdcDm {
 	public static void main(String[] args) throws InterruptedException {
 		int numberOfWorkers = 1;
 		Long maxBytesPerSecond = null;
+		WritableByteChannel pipe = null;
+		boolean compressed = false;
+		RangeOrderingPolicy rangeOrderingPolicy = null;
+		ContentCache contentCache = null;
+		boolean badOption = false;
+
+		while (args.length > 0 && args[0].startsWith("--")) {
+			if (args[0].equals(k_PipeOption)) {
+				// keep stdout clean for the file's bytes.
+				pipe = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+				System.setOut(System.err);
+			} else if (args[0].equals(k_CompressedOption)) {
+				compressed = true;
+			} else if (args[0].equals(k_CacheOption)) {
+				contentCache = new ContentCache(new File(System.getProperty("user.home"), k_CacheDirectoryName),
+						ContentCache.DEFAULT_MAX_BYTES);
+			} else if (args[0].startsWith(k_OrderOption)) {
+				try {
+					rangeOrderingPolicy = RangeOrderingPolicy.parse(args[0].substring(k_OrderOption.length()));
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					badOption = true;
+				}
+			} else {
+				badOption = true;
+			}
 
-		if (args.length < 1 || args.length > 3) {
-			System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
+		// streaming (to stdout or to the decompressor) needs the head of the file first,
+		// with the tail first nothing could be streamed until the very end.
+		if (pipe != null || compressed) {
+			if (rangeOrderingPolicy == null) {
+				rangeOrderingPolicy = new RangeOrderingPolicy.SequentialFirst();
+			} else if (rangeOrderingPolicy instanceof RangeOrderingPolicy.TailFirst) {
+				System.err.println("--order=tail can't be used with --pipe or --compressed.");
+				badOption = true;
+			}
+		}
+
+		if (args.length < 1 || args.length > 3 || (pipe != null && compressed) || badOption) {
+			System.err.printf("usage:\n\tjava IdcDm [--pipe | --compressed] [--order=head|tail|hot:START-END,...]"
+					+ " [--cache] URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
 			System.exit(1);
 		} else if (args.length >= 2) {
 			numberOfWorkers = Integer.parseInt(args[1]);
@@ -44,11 +102,125 @@ public class IdcDm {
 			System.err.printf(" limited to %d Bps", maxBytesPerSecond);
 		System.err.printf("...\n");
 
+		boolean downloadSucceeded = false;
+
 		try {
-			DownloadURL(url, numberOfWorkers, maxBytesPerSecond);
+			if (compressed && Decompressor.isCompressedSiblingAvailable(url)) {
+				downloadSucceeded = DownloadCompressedURL(url, numberOfWorkers, maxBytesPerSecond, rangeOrderingPolicy,
+						contentCache);
+			} else {
+				if (compressed) {
+					System.err.println("No compressed version found, downloading the file as is.");
+				}
+
+				downloadSucceeded = DownloadURL(url, numberOfWorkers, maxBytesPerSecond, pipe, rangeOrderingPolicy,
+						contentCache);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+
+		if (!downloadSucceeded) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Download the gzip sibling of the URL (URL.gz) and decompress it on the fly.
+	 *
+	 * The compressed file is downloaded (and resumed) like any other file, so the
+	 * metadata tracks the compressed offsets. Its in-order prefix is piped into a
+	 * Decompressor thread which writes the decompressed file. A gzip stream can't
+	 * be resumed in the middle, so on resume the decompressed file is rebuilt from
+	 * the compressed part that is already on disk. The compressed copy is deleted
+	 * only when the decompressed file has the size of the original URL. If the
+	 * compressed file turns out to be corrupt, it is deleted (with its metadata)
+	 * and the file is downloaded as is.
+	 *
+	 * @param url
+	 *            URL of the uncompressed file
+	 * @param numberOfWorkers
+	 *            number of concurrent connections
+	 * @param maxBytesPerSecond
+	 *            limit on download bytes-per-second
+	 * @param rangeOrderingPolicy
+	 *            which part of the compressed file to download first
+	 * @param contentCache
+	 *            cache of previously downloaded files, or null
+	 * @return true if the file was downloaded (and decompressed)
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static boolean DownloadCompressedURL(String url, int numberOfWorkers, Long maxBytesPerSecond,
+			RangeOrderingPolicy rangeOrderingPolicy, ContentCache contentCache)
+			throws IOException, InterruptedException {
+		String compressedUrl = url + Decompressor.COMPRESSED_SUFFIX;
+		long sizeOfFile = getSizeOfFile(url);
+		Decompressor decompressor = new Decompressor(DownloadableMetadata.getName(url));
+		Thread decompressorThread = new Thread(decompressor);
+		boolean downloadSucceeded = false;
+		decompressorThread.start();
+
+		try {
+			downloadSucceeded = DownloadURL(compressedUrl, numberOfWorkers, maxBytesPerSecond,
+					decompressor.getInputChannel(), rangeOrderingPolicy, contentCache);
+		} finally {
+			// whatever happened, let the decompressor finish.
+			try {
+				decompressor.getInputChannel().close();
+			} catch (IOException e) {
+				// the decompressor already stopped.
+			}
+
+			decompressorThread.join();
+		}
+
+		boolean decompressionSucceeded = downloadSucceeded && decompressor.isSucceeded();
+		boolean compressedFileIsCorrupt = decompressor.isInputCorrupt(downloadSucceeded);
+
+		// the compressed copy is deleted below, so make sure we got the whole file.
+		if (decompressionSucceeded && sizeOfFile >= 0 && decompressor.getDecompressedOffset() != sizeOfFile) {
+			System.err.printf("Decompressed %d bytes, but the file has %d bytes\n",
+					decompressor.getDecompressedOffset(), sizeOfFile);
+			decompressionSucceeded = false;
+			compressedFileIsCorrupt = true;
+		}
+
+		// resuming a corrupt compressed file fails the same way every time, so drop
+		// it and download the file as is.
+		if (compressedFileIsCorrupt) {
+			System.err.println("The compressed file is corrupt, downloading the file as is.");
+			new File(DownloadableMetadata.getName(compressedUrl)).delete();
+			new File(DownloadableMetadata.getMetadataName(DownloadableMetadata.getName(compressedUrl))).delete();
+			new File(DownloadableMetadata.getName(url)).delete();
+			deleteTemporaries();
+
+			if (contentCache != null) {
+				contentCache.remove(compressedUrl);
+			}
+
+			return DownloadURL(url, numberOfWorkers, maxBytesPerSecond, null, rangeOrderingPolicy, contentCache);
+		}
+
+		if (decompressionSucceeded) {
+			System.out.println("Decompressed " + decompressor.getDecompressedOffset() + " bytes");
+			// the compressed copy is not needed anymore.
+			new File(DownloadableMetadata.getName(compressedUrl)).delete();
+		} else {
+			System.out.println("Decompression failed");
+		}
+
+		return decompressionSucceeded;
+	}
+
+	// the Content-Length of the url, or -1 if the server doesn't send it.
+	private static long getSizeOfFile(String url) throws IOException {
+		HttpURLConnection fileSizeGetter = (HttpURLConnection) new URL(url).openConnection();
+		fileSizeGetter.setRequestMethod("HEAD");
+		long sizeOfFile = fileSizeGetter.getContentLengthLong();
+		fileSizeGetter.disconnect();
+
+		return sizeOfFile;
 	}
 
 	/**
@@ -66,15 +238,26 @@ public class IdcDm {
 	 *            number of concurrent connections
 	 * @param maxBytesPerSecond
 	 *            limit on download bytes-per-second
+	 * @param pipe
+	 *            channel that receives the file's bytes in order while
+	 *            downloading, or null
+	 * @param rangeOrderingPolicy
+	 *            which part of the file to download first, or null to spread the
+	 *            workers over the whole file
+	 * @param contentCache
+	 *            cache of previously downloaded files, or null
+	 * @return true if the download succeeded
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private static void DownloadURL(String url, int numberOfWorkers, Long maxBytesPerSecond)
+	static boolean DownloadURL(String url, int numberOfWorkers, Long maxBytesPerSecond,
+			WritableByteChannel pipe, RangeOrderingPolicy rangeOrderingPolicy, ContentCache contentCache)
 			throws IOException, InterruptedException {
 		// in order to determine the file's length, we open an HTTP connection and check
 		// the header.
 		HttpURLConnection fileSizeGetter = (HttpURLConnection) new URL(url).openConnection();
 		long sizeOfFile = fileSizeGetter.getContentLength();
+		String validator = ContentCache.getValidator(fileSizeGetter);
 		fileSizeGetter.disconnect();
 
 		// split into ranges according to the number of workers.
@@ -85,10 +268,29 @@ public class IdcDm {
 		if (DownloadableMetadata.checkIfMetaDataExists(url)) // check if metaData exists
 		{
 			downloadableMetadata = bringMetaDataBackToLife(url);
-		} else {
+		}
+
+		// the file changed since the previous run (or its metadata is unreadable), so
+		// the chunks we have are useless.
+		if (downloadableMetadata != null && downloadableMetadata.getNumberOfChunks() != numberOfChunks) {
+			System.err.println("The file changed since the previous download, starting over.");
+			downloadableMetadata = null;
+		}
+
+		if (downloadableMetadata == null) {
 			downloadableMetadata = new DownloadableMetadata(url, numberOfChunks);
 		}
 
+		// copy what we already have from the cache, before the workers start.
+		if (contentCache != null && validator != null) {
+			int chunksFromCache = contentCache.fill(url, validator, ContentCache.getBlockHashes(url),
+					downloadableMetadata, sizeOfFile);
+
+			if (chunksFromCache > 0) {
+				System.err.printf("Copied %d of %d chunks from the cache\n", chunksFromCache, numberOfChunks);
+			}
+		}
+
 		/*
 		 * 1. Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter,
 		 * RateLimiter
@@ -98,14 +300,25 @@ public class IdcDm {
 		TokenBucket tokenBucket = new TokenBucket(k_InitalizeSizeForTokenBucket);
 		// initialize the rate limiter
 		Thread rateLimiter = new Thread(new RateLimiter(tokenBucket, maxBytesPerSecond));
-		// initialize the file writer
-		Thread fileWriter = new Thread(new FileWriter(downloadableMetadata, chunkQueue));
+		// initialize the file writer, and the streamer when we pipe the file.
+		FileWriter writer;
+
+		if (pipe != null) {
+			ChunkStreamer chunkStreamer = new ChunkStreamer(pipe, sizeOfFile, downloadableMetadata);
+			writer = new FileWriter(downloadableMetadata, chunkQueue, chunkStreamer);
+		} else {
+			writer = new FileWriter(downloadableMetadata, chunkQueue);
+		}
+
+		Thread fileWriter = new Thread(writer);
+
 		// start the rate limiter and the filewriter.
 		rateLimiter.start();
 		fileWriter.start();
 		// Initialize worker array, the array will manage the httpRangGetter according
 		// to the number of the workers request by the user.
 		Thread[] WorkersArray = new Thread[numberOfWorkers];
+		HTTPRangeGetter[] GettersArray = new HTTPRangeGetter[numberOfWorkers];
 
 		boolean MissingRangesRemain = true;
 		boolean[] MissingRangesArrayPerThread = new boolean[numberOfWorkers];
@@ -114,14 +327,33 @@ public class IdcDm {
 		while (MissingRangesRemain) {
 			int i = 0;
 
+			// with an ordering policy, the workers share the window it picks instead of
+			// spreading over the whole file, so that part of the file completes first.
+			Range window = null;
+
+			if (rangeOrderingPolicy != null) {
+				window = rangeOrderingPolicy.getNextWindow(downloadableMetadata, sizeOfFile);
+
+				if (window == null) {
+					break;
+				}
+			}
+
 			while (i < numberOfWorkers) {
-				Range rangeForWorker = downloadableMetadata.getMissingRange(
-						getRangeAccordingToNumberOfWorkers(i, sizeOfSingleRange, numberOfWorkers, sizeOfFile));
+				Range rangeForWorker;
+
+				if (window != null) {
+					rangeForWorker = downloadableMetadata.getMissingRange(
+							getRangeInWindow(i, window.getStart(), window.getEnd(), numberOfWorkers));
+				} else {
+					rangeForWorker = downloadableMetadata.getMissingRange(
+							getRangeAccordingToNumberOfWorkers(i, sizeOfSingleRange, numberOfWorkers, sizeOfFile));
+				}
 
 				// if there is missing range exists, then we will initialize a new worker.
 				if (rangeForWorker != null) {
-					Thread httpRangeGetter = new Thread(
-							new HTTPRangeGetter(url, rangeForWorker, chunkQueue, tokenBucket));
+					GettersArray[i] = new HTTPRangeGetter(url, rangeForWorker, chunkQueue, tokenBucket);
+					Thread httpRangeGetter = new Thread(GettersArray[i]);
 					WorkersArray[i] = httpRangeGetter;
 					httpRangeGetter.start();
 				} else {
@@ -134,14 +366,28 @@ public class IdcDm {
 			/* 2. Join the HTTPRangeGetters */
 			joinAllTheWorkers(WorkersArray);
 
-			// wait for the queue.
-			waitUntilTheQueueIsEmpty(chunkQueue);
+			// wait until the writer wrote everything the workers queued, so the metadata
+			// is up to date. if the writer failed (e.g. the pipe was closed), stop.
+			if (!writer.waitUntilQueueIsWritten()) {
+				System.err.println("Stopping the download.");
+				break;
+			}
+
+			// the server keeps answering with other ranges, retrying won't help.
+			if (checkIfAnyWorkerFailed(GettersArray)) {
+				System.err.println("The server keeps sending unexpected responses. Stopping the download.");
+				break;
+			}
 
-			MissingRangesRemain = checkIfAllTheRangesWasDownloaded(numberOfWorkers, MissingRangesArrayPerThread);
+			if (rangeOrderingPolicy != null) {
+				MissingRangesRemain = downloadableMetadata.getFirstMissingChunk() >= 0;
+			} else {
+				MissingRangesRemain = checkIfAllTheRangesWasDownloaded(numberOfWorkers, MissingRangesArrayPerThread);
+			}
 		}
 
 		/* send finish marker to the Queue and terminate the TokenBucket */
-		Chunk markFininshChunk = new Chunk(null, -1, -1);
+		Chunk markFininshChunk = new Chunk(null, FileWriter.FINISH_MARKER_OFFSET, -1);
 		chunkQueue.add(markFininshChunk);
 
 		tokenBucket.terminate();
@@ -155,16 +401,42 @@ public class IdcDm {
 			e.printStackTrace();
 		}
 
+		// everything was streamed, let the reader of the pipe know.
+		if (pipe != null) {
+			try {
+				pipe.close();
+			} catch (IOException e) {
+				// the reader is already gone.
+			}
+		}
+
 		/*
 		 * Finally, print "Download succeeded/failed" and delete the metadata as needed.
 		 */
-		if (downloadableMetadata.isCompleted()) {
+		// the finish marker marks the metadata as completed even when we stopped
+		// early, so check that no chunk is missing.
+		boolean downloadSucceeded = downloadableMetadata.isCompleted()
+				&& downloadableMetadata.getFirstMissingChunk() < 0 && !writer.isFailed();
+
+		if (downloadSucceeded) {
 			System.out.println("Download succeeded");
+
+			if (contentCache != null && validator != null) {
+				try {
+					contentCache.store(url, validator, downloadableMetadata.getFilename());
+				} catch (IOException e) {
+					// the file itself is fine, it is just not cached.
+					System.err.println("Could not store the file in the cache: " + e);
+				}
+			}
+
 			downloadableMetadata.delete();
 			deleteTemporaries();
 		} else {
 			System.out.println("Download failed");
 		}
+
+		return downloadSucceeded;
 	}
 
 	private static Range getRangeAccordingToNumberOfWorkers(int i, long i_SizeOfSingleRange, int i_NumberOfWorkers,
@@ -193,6 +465,28 @@ public class IdcDm {
 		return returnRange;
 	}
 
+	// split the window [i_WindowStart, i_WindowEnd] between the workers, the same
+	// way we split the whole file. i_WindowStart is always chunk aligned.
+	private static Range getRangeInWindow(int i, long i_WindowStart, long i_WindowEnd, int i_NumberOfWorkers) {
+		long sizeOfWindow = i_WindowEnd - i_WindowStart + 1;
+		Range rangeInWindow = getRangeAccordingToNumberOfWorkers(i, sizeOfWindow / i_NumberOfWorkers,
+				i_NumberOfWorkers, sizeOfWindow);
+
+		// the chunk-aligned end may pass the end of a short window.
+		return new Range(rangeInWindow.getStart() + i_WindowStart,
+				Math.min(rangeInWindow.getEnd() + i_WindowStart, i_WindowEnd));
+	}
+
+	private static boolean checkIfAnyWorkerFailed(HTTPRangeGetter[] getters) {
+		for (HTTPRangeGetter getter : getters) {
+			if (getter != null && getter.isFailed()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	private static void joinAllTheWorkers(Thread[] workersThreads) throws InterruptedException {
 		for (Thread worker : workersThreads) {
 			if (worker != null) {
@@ -219,12 +513,6 @@ public class IdcDm {
 
 	}
 
-	static void waitUntilTheQueueIsEmpty(BlockingQueue<Chunk> chunkQueue) throws InterruptedException {
-		while (!chunkQueue.isEmpty()) {
-			Thread.sleep(1000);
-		}
-	}
-
 	private static boolean checkIfAllTheRangesWasDownloaded(int i_NumberOfWorkers,
 			boolean[] i_MissingRangesArrayPerThread) {
 
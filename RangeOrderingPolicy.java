@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which part of the file the workers download next.
+ *
+ * Every round, the workers split the window returned by getNextWindow()
+ * between them, instead of spreading over the whole file. This way a region of
+ * the file (its head, its tail, or user-specified hot ranges) is completed
+ * first, and can be read while the rest is downloading (see
+ * DownloadableMetadata.isRangeDownloaded()).
+ */
+interface RangeOrderingPolicy {
+	int WINDOW_SIZE = 4096 * HTTPRangeGetter.CHUNK_SIZE;
+	int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+
+	/**
+	 * Returns the next window to download, or null if no chunk is missing. The
+	 * window starts and ends on chunk boundaries (or at the end of the file),
+	 * since the metadata tracks whole chunks.
+	 */
+	Range getNextWindow(DownloadableMetadata downloadableMetadata, long sizeOfFile);
+
+	/**
+	 * Parse the value of the --order option: "head", "tail", or
+	 * "hot:START-END,START-,-SUFFIX_LENGTH,..." (byte ranges, like an HTTP Range
+	 * header).
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the order or one of the ranges is malformed
+	 */
+	static RangeOrderingPolicy parse(String order) {
+		if (order.equals("head")) {
+			return new SequentialFirst();
+		} else if (order.equals("tail")) {
+			return new TailFirst();
+		} else if (order.startsWith("hot:")) {
+			List<Range> hotRanges = new ArrayList<Range>();
+
+			for (String hotRange : order.substring("hot:".length()).split(",")) {
+				int dash = hotRange.indexOf('-');
+
+				if (dash < 0) {
+					throw new IllegalArgumentException("Hot range without a dash: " + hotRange);
+				} else if (dash == 0) {
+					// a suffix, its (negative) start is resolved against the size of the file.
+					hotRanges.add(new Range(Long.parseLong(hotRange), Long.MAX_VALUE));
+				} else if (dash == hotRange.length() - 1) {
+					hotRanges.add(new Range(Long.parseLong(hotRange.substring(0, dash)), Long.MAX_VALUE));
+				} else {
+					long start = Long.parseLong(hotRange.substring(0, dash));
+					long end = Long.parseLong(hotRange.substring(dash + 1));
+
+					if (start > end) {
+						throw new IllegalArgumentException("Hot range ends before it starts: " + hotRange);
+					}
+
+					hotRanges.add(new Range(start, end));
+				}
+			}
+
+			return new HotRangesFirst(hotRanges);
+		}
+
+		throw new IllegalArgumentException("Unknown range order: " + order);
+	}
+
+	/**
+	 * Download the file from its head to its tail (needed when streaming it).
+	 */
+	static class SequentialFirst implements RangeOrderingPolicy {
+		@Override
+		public Range getNextWindow(DownloadableMetadata downloadableMetadata, long sizeOfFile) {
+			int firstMissingChunk = downloadableMetadata.getFirstMissingChunk();
+
+			if (firstMissingChunk < 0) {
+				return null;
+			}
+
+			long windowStart = (long) firstMissingChunk * CHUNK_SIZE;
+
+			return new Range(windowStart, Math.min(windowStart + WINDOW_SIZE, sizeOfFile) - 1);
+		}
+	}
+
+	/**
+	 * Download the file from its tail to its head (e.g. for archives whose index
+	 * is at the end).
+	 */
+	static class TailFirst implements RangeOrderingPolicy {
+		@Override
+		public Range getNextWindow(DownloadableMetadata downloadableMetadata, long sizeOfFile) {
+			int lastMissingChunk = downloadableMetadata.getLastMissingChunk();
+
+			if (lastMissingChunk < 0) {
+				return null;
+			}
+
+			long windowEnd = Math.min((long) (lastMissingChunk + 1) * CHUNK_SIZE, sizeOfFile) - 1;
+			long windowStart = Math.max(0, (long) (lastMissingChunk + 1) * CHUNK_SIZE - WINDOW_SIZE);
+
+			return new Range(windowStart, windowEnd);
+		}
+	}
+
+	/**
+	 * Download the given ranges first, in the given order, and then the rest of
+	 * the file from its head. A range with a negative start is a suffix of the
+	 * file.
+	 */
+	static class HotRangesFirst implements RangeOrderingPolicy {
+		private final List<Range> hotRanges;
+		private final RangeOrderingPolicy rest = new SequentialFirst();
+
+		HotRangesFirst(List<Range> hotRanges) {
+			this.hotRanges = hotRanges;
+		}
+
+		@Override
+		public Range getNextWindow(DownloadableMetadata downloadableMetadata, long sizeOfFile) {
+			for (Range hotRange : hotRanges) {
+				long start = hotRange.getStart() < 0 ? Math.max(0, sizeOfFile + hotRange.getStart())
+						: hotRange.getStart();
+				long end = Math.min(hotRange.getEnd(), sizeOfFile - 1);
+				// round the end up to the end of its chunk.
+				end = Math.min(end / CHUNK_SIZE * CHUNK_SIZE + CHUNK_SIZE, sizeOfFile) - 1;
+
+				// e.g. a range beyond the end of the file, or one we already have.
+				if (start > end || downloadableMetadata.isRangeDownloaded(start, end)) {
+					continue;
+				}
+
+				int firstMissingChunk = downloadableMetadata.getFirstMissingChunk((int) (start / CHUNK_SIZE));
+
+				if (firstMissingChunk >= 0 && (long) firstMissingChunk * CHUNK_SIZE <= end) {
+					long windowStart = (long) firstMissingChunk * CHUNK_SIZE;
+
+					return new Range(windowStart, Math.min(windowStart + WINDOW_SIZE - 1, end));
+				}
+			}
+
+			return rest.getNextWindow(downloadableMetadata, sizeOfFile);
+		}
+	}
+}
@@ -9,6 +9,7 @@ public class RateLimiter implements Runnable {
 	private final TokenBucket tokenBucket;
 	private Long maxBytesPerSecond;
 	private final Long k_ConstatntSettingBaxBytesPerSecond = 1000000L;
+	private final long k_SleepBetweenClockChecks = 10;
 
 	RateLimiter(TokenBucket tokenBucket, Long i_MaxBytesPerSecond) {
 		this.tokenBucket = tokenBucket;
@@ -42,6 +43,13 @@ public class RateLimiter implements Runnable {
 				tokenBucket.add(maxBytesPerSecond);
 				lastTimeWeMeasureTheClock = System.currentTimeMillis();
 			}
+
+			// sleep instead of spinning on the clock.
+			try {
+				Thread.sleep(k_SleepBetweenClockChecks);
+			} catch (InterruptedException e) {
+				break;
+			}
 		}
 	}
 }
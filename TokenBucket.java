@@ -10,7 +10,7 @@
  */
 class TokenBucket {
 	private long m_CurNumOfTokens;
-	private boolean k_BucketIsTerminated;
+	private volatile boolean k_BucketIsTerminated;
 
 	TokenBucket(long tokens) {
 		m_CurNumOfTokens = tokens;
@@ -18,26 +18,35 @@ class TokenBucket {
 	}
 
 	synchronized void take(long tokens) {
-		while (true) {
-			if (m_CurNumOfTokens >= tokens) {
-				m_CurNumOfTokens -= tokens;
-				break;
-			} else {
-				try {
-					Thread.sleep(100); // Send this thread to sleep for 100 milliseconds for a second to pass
-				} catch (InterruptedException ex) {
-					ex.printStackTrace();
-				}
+		// wait (releasing the lock, so add() can fill the bucket) until there are
+		// enough tokens, or the bucket is terminated.
+		while (m_CurNumOfTokens < tokens && !k_BucketIsTerminated) {
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
 			}
 		}
+
+		if (!k_BucketIsTerminated) {
+			m_CurNumOfTokens -= tokens;
+		}
+	}
+
+	synchronized void set(long tokens) {
+		m_CurNumOfTokens = tokens;
+		notifyAll();
 	}
 
-	void add(long tokens) {
+	synchronized void add(long tokens) {
 		m_CurNumOfTokens += tokens;
+		notifyAll();
 	}
 
 	synchronized void terminate() {
 		k_BucketIsTerminated = true;
+		notifyAll();
 	}
 
 	boolean terminated() {